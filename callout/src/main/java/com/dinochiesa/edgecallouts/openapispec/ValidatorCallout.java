@@ -2,6 +2,14 @@ package com.dinochiesa.edgecallouts.openapispec;
 
 import java.util.Map;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
@@ -13,6 +21,8 @@ import com.apigee.flow.message.Message;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.lang.StringUtils;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import com.dinochiesa.openapispec.OasValidator;
 
 public class ValidatorCallout implements Execution {
@@ -22,6 +32,27 @@ public class ValidatorCallout implements Execution {
 
     private Map properties; // read-only
 
+    // Used only when parallel-validation is enabled, to read and validate large
+    // payloads while the other checks proceed. The pool and its queue are bounded;
+    // when both are full, the payload is handled on the calling thread.
+    private final static int PAYLOAD_EXECUTOR_THREADS = 8;
+    private final static int PAYLOAD_EXECUTOR_QUEUE_SIZE = 64;
+    private final static long DEFAULT_PARALLEL_THRESHOLD = 65536;
+    private final static int DEFAULT_MAX_VIOLATIONS = 100;
+    private final static String NO_VIOLATIONS = "{\"truncated\":false,\"violations\":[]}";
+    private static ExecutorService payloadExecutor =
+        new ThreadPoolExecutor(PAYLOAD_EXECUTOR_THREADS, PAYLOAD_EXECUTOR_THREADS,
+                               60L, TimeUnit.SECONDS,
+                               new ArrayBlockingQueue<Runnable>(PAYLOAD_EXECUTOR_QUEUE_SIZE),
+                               new ThreadFactoryBuilder()
+                               .setDaemon(true)
+                               .setNameFormat("oas-payload-%d")
+                               .build(),
+                               new ThreadPoolExecutor.CallerRunsPolicy());
+    static {
+        ((ThreadPoolExecutor) payloadExecutor).allowCoreThreadTimeOut(true);
+    }
+
     public ValidatorCallout (Map properties) {
         this.properties = properties;
     }
@@ -48,6 +79,65 @@ public class ValidatorCallout implements Execution {
         return validateBasePath.toLowerCase().equals("true");
     }
 
+    private boolean getUseParallelValidation(MessageContext msgCtxt) {
+        String parallel = (String) this.properties.get("parallel-validation");
+        if (StringUtils.isBlank(parallel)) { return false; }
+        parallel = resolvePropertyValue(parallel, msgCtxt);
+        if (StringUtils.isBlank(parallel)) { return false; }
+        if (!parallel.toLowerCase().equals("true")) { return false; }
+
+        // Small payloads are cheaper to handle on the calling thread. When the
+        // length is not known (eg, chunked transfer), assume the payload is large.
+        long threshold = getParallelThreshold(msgCtxt);
+        Object contentLength = msgCtxt.getVariable("request.header.content-length");
+        if (contentLength == null || StringUtils.isBlank(contentLength.toString())) { return true; }
+        try {
+            return Long.parseLong(contentLength.toString().trim()) >= threshold;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private long getParallelThreshold(MessageContext msgCtxt) {
+        String threshold = (String) this.properties.get("parallel-validation-threshold");
+        if (StringUtils.isBlank(threshold)) { return DEFAULT_PARALLEL_THRESHOLD; }
+        threshold = resolvePropertyValue(threshold, msgCtxt);
+        if (StringUtils.isBlank(threshold)) { return DEFAULT_PARALLEL_THRESHOLD; }
+        try {
+            return Long.parseLong(threshold.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException("parallel-validation-threshold must be a number");
+        }
+    }
+
+    private boolean getCollectViolations(MessageContext msgCtxt) {
+        String collect = (String) this.properties.get("collect-violations");
+        if (StringUtils.isBlank(collect)) { return false; }
+        collect = resolvePropertyValue(collect, msgCtxt);
+        if (StringUtils.isBlank(collect)) { return false; }
+        return collect.toLowerCase().equals("true");
+    }
+
+    private int getMaxViolations(MessageContext msgCtxt) {
+        String max = (String) this.properties.get("max-violations");
+        if (StringUtils.isBlank(max)) { return DEFAULT_MAX_VIOLATIONS; }
+        max = resolvePropertyValue(max, msgCtxt);
+        if (StringUtils.isBlank(max)) { return DEFAULT_MAX_VIOLATIONS; }
+        int value;
+        try {
+            value = Integer.parseInt(max.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException("max-violations must be a number");
+        }
+        if (value < 1) {
+            throw new IllegalStateException("max-violations must be positive");
+        }
+        return value;
+    }
+
     private String getSpec(MessageContext msgCtxt) throws Exception {
         String spec = (String) this.properties.get("spec");
         if (spec == null) {
@@ -119,14 +209,114 @@ public class ValidatorCallout implements Execution {
     }
 
 
+    // Validate the metadata and then the payload, on the calling thread,
+    // stopping at the first failure unless collecting violations.
+    private boolean validateSequentially(OasValidator validator, boolean hasBody, boolean collect,
+                                         MessageContext msgCtxt)
+        throws Exception {
+        boolean valid = validateMetadata(validator, hasBody, collect, msgCtxt);
+        if ((valid || collect) && hasBody) {
+            valid = validator.validatePayload(msgCtxt.getMessage().getContentAsStream()) && valid;
+        }
+        return valid;
+    }
+
+    // Read and validate the payload on the shared executor, while checking
+    // the parameters, accept and content-type on the calling thread. If one
+    // of those cheap checks fails, or throws, the payload work is stopped,
+    // unless violations are being collected. In every case the payload task
+    // has finished, or will never start, before this returns, so nothing
+    // touches the message or the validator after execute() is done. The
+    // validator retains whichever failure was recorded first.
+    private boolean validateConcurrently(final OasValidator validator, boolean collect,
+                                         final MessageContext msgCtxt)
+        throws Exception {
+        // claimed by whichever comes first: the task starting, or the caller giving up on it
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+        Future<Boolean> payloadResult = payloadExecutor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    if (!claimed.compareAndSet(false, true)) return false;
+                    return validator.validatePayload(msgCtxt.getMessage().getContentAsStream());
+                }
+            });
+
+        boolean valid = false;
+        boolean checked = false;
+        try {
+            valid = validateMetadata(validator, true, collect, msgCtxt);
+            checked = true;
+        }
+        finally {
+            if (!checked || (!valid && !collect)) {
+                stopPayload(validator, claimed, payloadResult);
+            }
+        }
+        if (!valid && !collect) return false;
+
+        try {
+            return payloadResult.get() && valid;
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+    }
+
+    // A task that has not started is dropped from the queue without
+    // waiting. One that is running is told to stop, and awaited.
+    private static void stopPayload(OasValidator validator, AtomicBoolean claimed,
+                                    Future<Boolean> payloadResult)
+        throws InterruptedException {
+        if (claimed.compareAndSet(false, true)) {
+            payloadResult.cancel(false);
+            ((ThreadPoolExecutor) payloadExecutor).remove((Runnable) payloadResult);
+            return;
+        }
+        validator.cancel();
+        try {
+            payloadResult.get();
+        }
+        catch (ExecutionException e) {
+            // expected when cancelled mid-read; the metadata failure is what gets reported
+        }
+    }
+
+    // When collecting violations, all of these checks are performed even
+    // after one fails.
+    private boolean validateMetadata(OasValidator validator, boolean hasBody, boolean collect,
+                                     MessageContext msgCtxt) {
+        boolean valid = validator.validateParameters(new Retriever("header", msgCtxt),
+                                                     new Retriever("queryparam", msgCtxt));
+
+        if (valid || collect) {
+            Object accept = msgCtxt.getVariable("request.header.accept");
+            if (accept != null) {
+                valid = validator.validateAccept(accept) && valid;
+            }
+        }
+
+        if ((valid || collect) && hasBody) {
+            Object ctype = msgCtxt.getVariable("request.header.content-type");
+            if (ctype != null) {
+                valid = validator.validateContentType(ctype.toString()) && valid;
+            }
+        }
+        return valid;
+    }
+
     public ExecutionResult execute(MessageContext msgCtxt, ExecutionContext exeCtxt) {
         try {
             msgCtxt.removeVariable(varName("error"));
             msgCtxt.removeVariable(varName("valid"));
+            msgCtxt.removeVariable(varName("failed_stage"));
+            msgCtxt.removeVariable(varName("violations"));
 
             // validate the request here
             boolean valid = true;
-            OasValidator validator = new OasValidator(getSpec(msgCtxt));
+            boolean collect = getCollectViolations(msgCtxt);
+            OasValidator validator = new OasValidator(getSpec(msgCtxt),
+                                                      collect ? getMaxViolations(msgCtxt) : 1);
 
             // It might be simpler to collapse all of this validation down into one call
             // into the OasValidator class. But I think I might want to make the list of
@@ -148,25 +338,12 @@ public class ValidatorCallout implements Execution {
             }
 
             if (valid) {
-                valid = validator.validateParameters(new Retriever("queryparam", msgCtxt),
-                                                     new Retriever("header", msgCtxt));
-            }
-
-            if (valid) {
-                Object accept = msgCtxt.getVariable("request.header.accept");
-                if (accept != null) {
-                    valid = validator.validateAccept(accept);
+                boolean hasBody = !(verb.equals("GET") || verb.equals("DELETE") || verb.equals("OPTIONS"));
+                if (hasBody && getUseParallelValidation(msgCtxt)) {
+                    valid = validateConcurrently(validator, collect, msgCtxt);
                 }
-            }
-
-            if (valid) {
-                if (!(verb.equals("GET") || verb.equals("DELETE") || verb.equals("OPTIONS"))) {
-                    Object ctype = msgCtxt.getVariable("request.header.content-type");
-                    if (ctype != null) {
-                        valid = validator.validateContentType(ctype.toString());
-                    }
-                    if (valid)
-                        valid = validator.validatePayload(msgCtxt.getMessage().getContentAsStream());
+                else {
+                    valid = validateSequentially(validator, hasBody, collect, msgCtxt);
                 }
             }
 
@@ -178,6 +355,8 @@ public class ValidatorCallout implements Execution {
                 msgCtxt.setVariable(varName("error"), errorInfo[0]);
                 msgCtxt.setVariable(varName("error_detail"), errorInfo[1]);
                 msgCtxt.setVariable(varName("valid"), false);
+                msgCtxt.setVariable(varName("failed_stage"), validator.getFailedStage());
+                msgCtxt.setVariable(varName("violations"), validator.getViolations().toJson());
                 if (!getSuppressFault(msgCtxt)) { return ExecutionResult.ABORT; }
             }
         }
@@ -196,6 +375,8 @@ public class ValidatorCallout implements Execution {
             }
             msgCtxt.setVariable(varName("stacktrace"), ExceptionUtils.getStackTrace(e));
             msgCtxt.setVariable(varName("success"), false);
+            // the fault response refers to this, and it must be valid JSON
+            msgCtxt.setVariable(varName("violations"), NO_VIOLATIONS);
 
             if (getSuppressFault(msgCtxt)) return ExecutionResult.SUCCESS;
             return ExecutionResult.ABORT;
@@ -0,0 +1,329 @@
+package com.dinochiesa.openapispec;
+
+import io.swagger.models.Swagger;
+import io.swagger.models.Path;
+import io.swagger.models.Operation;
+import io.swagger.models.Model;
+import io.swagger.models.parameters.BodyParameter;
+import io.swagger.models.parameters.Parameter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable, pre-digested form of a Swagger model. The routes (paths
+ * and their operations) and the definitions are compiled once, at cache
+ * load, with every $ref resolved to the SchemaNode of its definition.
+ * When a spec is reloaded, compile() is handed the previous version, and
+ * any route or definition whose content has not changed, and which does
+ * not refer to a definition that has changed, is carried over as-is
+ * rather than being rebuilt. "Has not changed" is decided by equals() on
+ * the swagger model objects, which stops at the first difference and
+ * allocates nothing; a model class without value equality simply means
+ * that part is always rebuilt.
+ *
+ * Instances are never modified after construction, so a new version can be
+ * published by simply replacing the reference in the cache.
+ */
+public class CompiledSpec {
+
+    private final Swagger swagger;
+    private final String lineage;
+    private final Map<String, Route> routes;
+    private final Map<String, Definition> definitions;
+    private final int reusedCount;
+    private final long estimatedFootprint;
+
+    /**
+     * An operation, with its query and header parameter names, those of
+     * them that are required, and its body schema resolved ahead of time.
+     */
+    public static class CompiledOperation {
+        private final Operation operation;
+        private final String location;
+        private final String[] queryParameters;
+        private final String[] headerParameters;
+        private final String[] requiredQueryParameters;
+        private final String[] requiredHeaderParameters;
+        private final SchemaNode bodySchema;
+        private final String bodySchemaLocation;
+
+        CompiledOperation(Operation operation, String location, SchemaCompiler compiler) {
+            this.operation = operation;
+            this.location = location;
+            List<String> query = new ArrayList<String>();
+            List<String> header = new ArrayList<String>();
+            List<String> requiredQuery = new ArrayList<String>();
+            List<String> requiredHeader = new ArrayList<String>();
+            String bodyLocation = null;
+            if (operation.getParameters() != null) {
+                for (int i = 0; i < operation.getParameters().size(); i++) {
+                    Parameter p = operation.getParameters().get(i);
+                    if (p instanceof BodyParameter && bodyLocation == null) {
+                        bodyLocation = String.format("%s/parameters/%d/schema", location, i);
+                    }
+                    else if ("query".equals(p.getIn())) {
+                        query.add(SchemaCompiler.intern(p.getName()));
+                        if (p.getRequired()) requiredQuery.add(SchemaCompiler.intern(p.getName()));
+                    }
+                    else if ("header".equals(p.getIn())) {
+                        header.add(SchemaCompiler.intern(p.getName()));
+                        if (p.getRequired()) requiredHeader.add(SchemaCompiler.intern(p.getName()));
+                    }
+                }
+            }
+            this.queryParameters = query.toArray(new String[query.size()]);
+            this.headerParameters = header.toArray(new String[header.size()]);
+            this.requiredQueryParameters = requiredQuery.toArray(new String[requiredQuery.size()]);
+            this.requiredHeaderParameters = requiredHeader.toArray(new String[requiredHeader.size()]);
+            this.bodySchema = compiler.compileBody(operation);
+            this.bodySchemaLocation = bodyLocation;
+        }
+
+        public Operation getOperation() { return operation; }
+
+        /** A JSON pointer to this operation within the spec. */
+        public String getLocation() { return location; }
+        public String[] getQueryParameters() { return queryParameters; }
+        public String[] getHeaderParameters() { return headerParameters; }
+        public String[] getRequiredQueryParameters() { return requiredQueryParameters; }
+        public String[] getRequiredHeaderParameters() { return requiredHeaderParameters; }
+
+        /** The schema of the body parameter, or null if there is none. */
+        public SchemaNode getBodySchema() { return bodySchema; }
+        public String getBodySchemaLocation() { return bodySchemaLocation; }
+    }
+
+    /**
+     * A path from the spec, with its operations indexed by uppercase verb.
+     */
+    public static class Route {
+        private final String name;
+        private final Path path;
+        private final String location;
+        private final Set<String> refs;
+        private final Map<String, CompiledOperation> operations;
+
+        Route(String name, Path path, SchemaCompiler compiler) {
+            this.name = name;
+            this.path = path;
+            this.location = "#/paths/" + Violations.escapePointerSegment(name);
+            Map<String, CompiledOperation> ops = new HashMap<String, CompiledOperation>();
+            putIfPresent(ops, "GET", path.getGet(), compiler);
+            putIfPresent(ops, "PUT", path.getPut(), compiler);
+            putIfPresent(ops, "POST", path.getPost(), compiler);
+            putIfPresent(ops, "DELETE", path.getDelete(), compiler);
+            putIfPresent(ops, "PATCH", path.getPatch(), compiler);
+            putIfPresent(ops, "OPTIONS", path.getOptions(), compiler);
+            this.operations = Collections.unmodifiableMap(ops);
+
+            Set<String> refs = new HashSet<String>();
+            for (CompiledOperation op : ops.values()) {
+                BodyParameter body = SchemaCompiler.bodyParameterOf(op.getOperation());
+                if (body != null) {
+                    SchemaCompiler.collectRefs(body.getSchema(), refs);
+                }
+            }
+            this.refs = refs;
+        }
+
+        private void putIfPresent(Map<String, CompiledOperation> ops, String verb,
+                                  Operation op, SchemaCompiler compiler) {
+            if (op != null) {
+                ops.put(verb, new CompiledOperation(op, location + "/" + verb.toLowerCase(), compiler));
+            }
+        }
+
+        public String getName() { return name; }
+        public Path getPath() { return path; }
+
+        /** A JSON pointer to this path within the spec. */
+        public String getLocation() { return location; }
+        public CompiledOperation getCompiledOperation(String verb) {
+            return operations.get(verb.toUpperCase());
+        }
+        public Operation getOperation(String verb) {
+            CompiledOperation op = getCompiledOperation(verb);
+            return (op == null) ? null : op.getOperation();
+        }
+    }
+
+    /**
+     * A named model from the definitions section of the spec.
+     */
+    public static class Definition {
+        private final String name;
+        private final Model model;
+        private final SchemaNode schema;
+
+        Definition(String name, Model model, SchemaNode schema) {
+            this.name = name;
+            this.model = model;
+            this.schema = schema;
+        }
+
+        public String getName() { return name; }
+        public Model getModel() { return model; }
+        public SchemaNode getSchema() { return schema; }
+    }
+
+    private CompiledSpec(Swagger swagger, String lineage,
+                         Map<String, Route> routes,
+                         Map<String, Definition> definitions,
+                         int reusedCount,
+                         long estimatedFootprint) {
+        this.swagger = swagger;
+        this.lineage = lineage;
+        this.routes = Collections.unmodifiableMap(routes);
+        this.definitions = Collections.unmodifiableMap(definitions);
+        this.reusedCount = reusedCount;
+        this.estimatedFootprint = estimatedFootprint;
+    }
+
+    /**
+     * Compile the given Swagger model. If previous is non-null, then routes
+     * and definitions with the same name and identical content are reused
+     * from it, as long as nothing they refer to has changed.
+     */
+    public static CompiledSpec compile(Swagger swagger, String lineage, CompiledSpec previous) {
+        int reused = 0;
+        Map<String, Model> models = (swagger.getDefinitions() != null) ?
+            swagger.getDefinitions() : Collections.<String, Model>emptyMap();
+
+        // find the definitions that were added, modified or removed
+        Map<String, Set<String>> refsByDefinition = new HashMap<String, Set<String>>();
+        Set<String> changed = new HashSet<String>();
+        for (Map.Entry<String, Model> entry : models.entrySet()) {
+            String name = entry.getKey();
+            Set<String> refs = new HashSet<String>();
+            SchemaCompiler.collectRefs(entry.getValue(), refs);
+            refsByDefinition.put(name, refs);
+            Definition prior = (previous == null) ? null : previous.definitions.get(name);
+            if (prior == null || !prior.model.equals(entry.getValue())) {
+                changed.add(name);
+            }
+        }
+        if (previous != null) {
+            for (String name : previous.definitions.keySet()) {
+                if (!models.containsKey(name)) { changed.add(name); }
+            }
+        }
+        Set<String> affected = dependentsOf(changed, refsByDefinition);
+
+        // Every definition gets its node before any is filled in, so that
+        // references - including cyclic ones - resolve to the final node.
+        Map<String, SchemaNode> nodes = new HashMap<String, SchemaNode>();
+        Map<String, Definition> definitions = new HashMap<String, Definition>();
+        for (String name : models.keySet()) {
+            if (affected.contains(name)) {
+                nodes.put(name, new SchemaNode(SchemaCompiler.intern(name)));
+            }
+            else {
+                Definition prior = previous.definitions.get(name);
+                nodes.put(name, prior.schema);
+                definitions.put(name, prior);
+                reused++;
+            }
+        }
+        SchemaCompiler compiler = new SchemaCompiler(nodes);
+        for (Map.Entry<String, Model> entry : models.entrySet()) {
+            String name = entry.getKey();
+            if (affected.contains(name)) {
+                compiler.fill(nodes.get(name), entry.getValue());
+                definitions.put(name, new Definition(name, entry.getValue(), nodes.get(name)));
+            }
+        }
+
+        Map<String, Route> routes = new HashMap<String, Route>();
+        if (swagger.getPaths() != null) {
+            for (Map.Entry<String, Path> entry : swagger.getPaths().entrySet()) {
+                String name = entry.getKey();
+                Route prior = (previous == null) ? null : previous.routes.get(name);
+                if (prior != null && prior.path.equals(entry.getValue()) &&
+                    Collections.disjoint(prior.refs, affected)) {
+                    routes.put(name, prior);
+                    reused++;
+                }
+                else {
+                    routes.put(name, new Route(name, entry.getValue(), compiler));
+                }
+            }
+        }
+
+        List<SchemaNode> roots = new ArrayList<SchemaNode>(nodes.values());
+        for (Route route : routes.values()) {
+            for (CompiledOperation op : route.operations.values()) {
+                roots.add(op.getBodySchema());
+            }
+        }
+
+        return new CompiledSpec(swagger, lineage, routes, definitions, reused,
+                                SchemaNode.estimateFootprint(roots));
+    }
+
+    // Returns the given definitions, plus all those that refer to them,
+    // directly or indirectly.
+    private static Set<String> dependentsOf(Set<String> changed, Map<String, Set<String>> refsByDefinition) {
+        Map<String, Set<String>> referrers = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, Set<String>> entry : refsByDefinition.entrySet()) {
+            for (String ref : entry.getValue()) {
+                Set<String> set = referrers.get(ref);
+                if (set == null) {
+                    set = new HashSet<String>();
+                    referrers.put(ref, set);
+                }
+                set.add(entry.getKey());
+            }
+        }
+        Set<String> result = new HashSet<String>(changed);
+        List<String> pending = new ArrayList<String>(changed);
+        while (!pending.isEmpty()) {
+            Set<String> set = referrers.get(pending.remove(pending.size() - 1));
+            if (set != null) {
+                for (String name : set) {
+                    if (result.add(name)) { pending.add(name); }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a key that identifies successive versions of "the same" spec,
+     * or null if there is no such thing. Only a spec read from a URL can
+     * change while keeping its identity, and for that the key is the URL. A
+     * spec passed inline is its own cache key, and a spec in a resource
+     * cannot change at all; neither has a lineage, so each is compiled in
+     * full.
+     */
+    public static String lineageOf(String source) {
+        if (source.startsWith("http://") || source.startsWith("https://")) {
+            return source;
+        }
+        return null;
+    }
+
+    public Swagger getSwagger() { return swagger; }
+    public String getLineage() { return lineage; }
+    public Route getRoute(String urlPath) { return routes.get(urlPath); }
+    public Definition getDefinition(String name) { return definitions.get(name); }
+    public Map<String, Route> getRoutes() { return routes; }
+    public Map<String, Definition> getDefinitions() { return definitions; }
+
+    /**
+     * The number of routes and definitions that were carried over from the
+     * previous version, unchanged, when this one was compiled.
+     */
+    public int getReusedCount() { return reusedCount; }
+
+    /**
+     * An estimate, in bytes, of the memory held by the compiled schema graph
+     * of this spec. It does not include the underlying Swagger model.
+     */
+    public long getEstimatedFootprint() { return estimatedFootprint; }
+}
@@ -3,22 +3,38 @@ package com.dinochiesa.openapispec;
 import io.swagger.models.Swagger;
 import io.swagger.models.Path;
 import io.swagger.models.Operation;
-import io.swagger.models.parameters.Parameter;
 import io.swagger.parser.SwaggerParser;
 import io.swagger.util.Json;
 import io.swagger.util.Yaml;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonProcessingException;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.Map;
 import java.util.HashMap;
+import java.io.FilterInputStream;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
@@ -29,10 +45,16 @@ import java.util.ArrayList;
 
 public class OasValidator {
 
+    private CompiledSpec compiledSpec;
     private Swagger openApiSpec;
+    private CompiledSpec.Route route;
     private Path path;
+    private CompiledSpec.CompiledOperation compiledOperation;
     private Operation operation;
     private String[] errorInfo;
+    private String failedStage;
+    private final Violations violations;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
     // private Map<String, io.swagger.models.Operation> operationsMap;
 
     private static SwaggerParser swaggerParser = new SwaggerParser();
@@ -40,11 +62,32 @@ public class OasValidator {
 
     // It is expensive to initialize a Swagger. Also, instances of
     // Swagger are thread safe, once initialized. Therefore we want
-    // to use a cache of these things.
+    // to use a cache of these things. What we cache is a CompiledSpec,
+    // which wraps the Swagger along with the pre-digested routes and
+    // definitions.
 
     private final static int OAS_CACHE_MAX_EXTRIES = 1024;
     private final static int OAS_CACHE_WRITE_CONCURRENCY = 6;
-    private static LoadingCache<String,Swagger> oasCache;
+    private static LoadingCache<String,CompiledSpec> oasCache;
+
+    // The most recently compiled version of each URL spec, keyed by lineage
+    // (see CompiledSpec.lineageOf). When a spec changes, the new version
+    // is diffed against this one, and the unchanged parts are reused. An
+    // entry lives only as long as its CompiledSpec is held in oasCache.
+    private static ConcurrentMap<String,CompiledSpec> latestByLineage =
+        new ConcurrentHashMap<String,CompiledSpec>();
+
+    // The number of loads of each key. Maintained only when a test sets it.
+    static volatile ConcurrentMap<String,AtomicInteger> loadCounts;
+
+    // Refreshes of URL specs run here, off the request threads.
+    private final static int RELOAD_EXECUTOR_THREADS = 2;
+    private static ExecutorService reloadExecutor =
+        Executors.newFixedThreadPool(RELOAD_EXECUTOR_THREADS,
+                                     new ThreadFactoryBuilder()
+                                     .setDaemon(true)
+                                     .setNameFormat("oas-reload-%d")
+                                     .build());
 
     static {
         oasCache =
@@ -52,73 +95,147 @@ public class OasValidator {
             .concurrencyLevel(OAS_CACHE_WRITE_CONCURRENCY)
             .maximumSize(OAS_CACHE_MAX_EXTRIES)
             .expireAfterAccess(10, TimeUnit.MINUTES)
-            .build(new CacheLoader<String,Swagger>() {
-                    public Swagger load(String source) throws IOException {
-                        if (source.startsWith("http://") || source.startsWith("https://")) {
-                            // read from a URL
-                            return swaggerParser.read(source);
-                        }
-                        if (source.startsWith("{") && source.endsWith("}")) {
-                            // read from JSON directly
-                            return swaggerParser.parse(source);
-                        }
-                        if (source.startsWith("---")) {
-                            // read from YAML directly
-                            ObjectMapper yamlMapper = Yaml.mapper();
-                            return yamlMapper.readValue(source, Swagger.class);
-                            //return swaggerParser.parse(source);
+            .refreshAfterWrite(10, TimeUnit.MINUTES)
+            .removalListener(new RemovalListener<String,CompiledSpec>() {
+                    public void onRemoval(RemovalNotification<String,CompiledSpec> notification) {
+                        // on refresh, compile() has already published the successor
+                        CompiledSpec spec = notification.getValue();
+                        if (spec != null && spec.getLineage() != null &&
+                            notification.getCause() != RemovalCause.REPLACED) {
+                            latestByLineage.remove(spec.getLineage(), spec);
                         }
+                    }
+                })
+            .build(new CacheLoader<String,CompiledSpec>() {
+                    public CompiledSpec load(String source) throws IOException {
+                        countLoad(source);
+                        return compile(source, parseSpec(source));
+                    }
 
-                        // assume this is a name of a resource embedded into the JAR
-                        InputStream in = getResourceAsStream(source);
-                        byte[] bytes = IOUtils.toByteArray(in);
-                        String stringContent = new String(bytes, StandardCharsets.UTF_8);
-                        return swaggerParser.parse(stringContent);
+                    // Only a spec read from a URL can change under the same key. It is
+                    // re-read on the reload executor; meanwhile every request, including
+                    // the one that triggered the refresh, gets the prior version.
+                    public ListenableFuture<CompiledSpec> reload(final String source, CompiledSpec oldValue) {
+                        if (!isUrl(source)) {
+                            return Futures.immediateFuture(oldValue);
+                        }
+                        ListenableFutureTask<CompiledSpec> task =
+                            ListenableFutureTask.create(new Callable<CompiledSpec>() {
+                                    public CompiledSpec call() throws IOException {
+                                        return compile(source, parseSpec(source));
+                                    }
+                                });
+                        reloadExecutor.execute(task);
+                        return task;
                     }
                 });
     }
 
+    private static boolean isUrl(String source) {
+        return source.startsWith("http://") || source.startsWith("https://");
+    }
+
+    private static Swagger parseSpec(String source) throws IOException {
+        if (isUrl(source)) {
+            // read from a URL
+            return swaggerParser.read(source);
+        }
+        if (source.startsWith("{") && source.endsWith("}")) {
+            // read from JSON directly
+            return swaggerParser.parse(source);
+        }
+        if (source.startsWith("---")) {
+            // read from YAML directly
+            ObjectMapper yamlMapper = Yaml.mapper();
+            return yamlMapper.readValue(source, Swagger.class);
+            //return swaggerParser.parse(source);
+        }
+
+        // assume this is a name of a resource embedded into the JAR
+        InputStream in = getResourceAsStream(source);
+        byte[] bytes = IOUtils.toByteArray(in);
+        String stringContent = new String(bytes, StandardCharsets.UTF_8);
+        return swaggerParser.parse(stringContent);
+    }
+
+    private static CompiledSpec compile(String source, Swagger swagger) throws IOException {
+        if (swagger == null) {
+            throw new IOException("cannot parse spec");
+        }
+        String lineage = CompiledSpec.lineageOf(source);
+        if (lineage == null) {
+            return CompiledSpec.compile(swagger, null, null);
+        }
+        CompiledSpec compiled = CompiledSpec.compile(swagger, lineage, latestByLineage.get(lineage));
+        // publish the new version; readers holding the prior one are unaffected
+        latestByLineage.put(lineage, compiled);
+        return compiled;
+    }
+
+    private static void countLoad(String source) {
+        ConcurrentMap<String,AtomicInteger> counts = loadCounts;
+        if (counts != null) {
+            counts.putIfAbsent(source, new AtomicInteger());
+            counts.get(source).incrementAndGet();
+        }
+    }
+
+    // Returns true if a loaded entry was removed. An entry that is still
+    // loading is left alone.
+    static boolean evictFromCache(String specId) {
+        return oasCache.asMap().remove(specId) != null;
+    }
 
     public interface ParameterRetriever {
         public String get(String name);
     }
 
     public OasValidator(String specId) throws ExecutionException {
-        openApiSpec = oasCache.get(specId);
+        this(specId, 1);
+    }
+
+    // maxViolations bounds the number of violations that will be collected;
+    // validation of the payload stops once that many have been found.
+    public OasValidator(String specId, int maxViolations) throws ExecutionException {
+        compiledSpec = oasCache.get(specId);
+        openApiSpec = compiledSpec.getSwagger();
+        violations = new Violations(maxViolations);
     }
 
     public boolean validateBasePath(String basePath) {
         String expectedBasePath = openApiSpec.getBasePath();
         boolean ok = expectedBasePath.equals(basePath);
         if(!ok) {
-            errorInfo = new String[] {
+            fail("basepath", Violations.Code.INVALID_BASEPATH, "#/basePath", new String[] {
                 "invalid basepath",
                 String.format("basepath of (%s) does not match expected (%s)", basePath, expectedBasePath)
-            };
+            });
         }
         return ok;
     }
 
     public boolean validatePath(String urlPath) {
-        path = openApiSpec.getPath(urlPath);
+        route = compiledSpec.getRoute(urlPath);
+        path = (route == null) ? null : route.getPath();
         boolean ok = (path != null);
         if(!ok) {
-            errorInfo = new String[] {
+            fail("path", Violations.Code.UNKNOWN_PATH, "#/paths", new String[] {
                 "invalid path",
                 String.format("no path found for (%s)", urlPath)
-            };
+            });
         }
         return ok;
     }
 
     public boolean validateVerb(String verb) {
-        operation = findOperation(verb);
+        compiledOperation = route.getCompiledOperation(verb);
+        operation = (compiledOperation == null) ? null : compiledOperation.getOperation();
         boolean ok = (operation != null);
         if(!ok) {
-            errorInfo = new String[] {
+            fail("verb", Violations.Code.UNSUPPORTED_METHOD, route.getLocation(), new String[] {
                 "invalid method",
                 String.format("no operation found for the verb of (%s)", verb)
-            };
+            });
         }
         return ok;
     }
@@ -148,10 +265,11 @@ public class OasValidator {
             }
         }
         if(!ok) {
-            errorInfo = new String[] {
+            fail("accept", Violations.Code.UNACCEPTABLE_MEDIA_TYPE,
+                 compiledOperation.getLocation() + "/produces", new String[] {
                 "invalid accept header",
                 String.format("the accept values of [%s] was not valid", Arrays.toString(accepts))
-            };
+            });
         }
         return ok;
     }
@@ -163,10 +281,11 @@ public class OasValidator {
         // TODO: consider encoding?
         boolean ok = consumes.contains(ctype);
         if(!ok) {
-            errorInfo = new String[] {
+            fail("content-type", Violations.Code.UNSUPPORTED_CONTENT_TYPE,
+                 compiledOperation.getLocation() + "/consumes", new String[] {
                 "invalid content-type header",
                 String.format("content-type of (%s) is not supported", ctype)
-            };
+            });
         }
         return ok;
     }
@@ -174,48 +293,75 @@ public class OasValidator {
     public boolean validateParameters(ParameterRetriever headers, ParameterRetriever qparams)
         throws IllegalStateException {
         if (operation==null) throw new IllegalStateException("call validateVerb before validateParameters");
-        boolean ok = true;
         List<String> missing = new ArrayList<String>();
-        List<Parameter> params = operation.getParameters();
-        for(Parameter p : params) {
-            if(p.getIn().equals("query")) {
-                String name = p.getName();
-                String paramValue = qparams.get(name);
-                if (paramValue == null)  {
-                    missing.add("qparam:"+name);
-                }
+        for (String name : compiledOperation.getRequiredQueryParameters()) {
+            if (qparams.get(name) == null) {
+                missing.add("qparam:"+name);
             }
-            else if(p.getIn().equals("header")) {
-                String name = p.getName();
-                String paramValue = headers.get(name);
-                if (paramValue == null)  {
-                    missing.add("header:"+name);
-                }
+        }
+        for (String name : compiledOperation.getRequiredHeaderParameters()) {
+            if (headers.get(name) == null) {
+                missing.add("header:"+name);
             }
         }
+        boolean ok = missing.isEmpty();
 
         if(!ok) {
-            errorInfo = new String[] {
+            fail("parameters", Violations.Code.MISSING_PARAMETER,
+                 compiledOperation.getLocation() + "/parameters", new String[] {
                 "invalid parameters",
                 String.format("missing parameters %s",
                               Arrays.toString(missing.toArray(new String[missing.size()])))
-            };
+            });
         }
         return ok;
     }
 
+    // If cancel() is called while this runs, the read or the walk stops
+    // promptly: the read by throwing InterruptedIOException, the walk by
+    // returning false. A body that is not JSON is a MALFORMED_PAYLOAD
+    // violation.
     public boolean validatePayload(InputStream src) throws IllegalStateException, IOException {
         if (operation==null) throw new IllegalStateException("call validateVerb before validateAccept");
-        JsonNode contentJson = mapper.readValue(src, JsonNode.class);
-        // TODO: validate against the schema here. Which schema? How can I get it?
-        boolean ok = true;
-        if(!ok) {
-            errorInfo = new String[] {
+        SchemaNode schema = compiledOperation.getBodySchema();
+        if (schema == null) return true;
+        JsonNode contentJson;
+        try {
+            contentJson = mapper.readValue(new CancellableInputStream(src, cancelled), JsonNode.class);
+        }
+        catch (JsonProcessingException e) {
+            // eg, the body is XML or form data, and the content-type check has
+            // already failed; report it alongside, rather than as an exception
+            if (violations.add(Violations.Code.MALFORMED_PAYLOAD, "", compiledOperation.getBodySchemaLocation())) {
+                setErrorInfo("payload", new String[] {
+                    "invalid payload",
+                    String.format("payload is not valid JSON: %s", e.getOriginalMessage())
+                });
+            }
+            return false;
+        }
+        PayloadValidator payloadValidator =
+            new PayloadValidator(violations, compiledOperation.getBodySchemaLocation(), cancelled);
+        boolean ok = payloadValidator.validate(contentJson, schema);
+        // even when cancelled: if the first violation is ours, so is the error info
+        if (!ok && payloadValidator.recordedFirst()) {
+            setErrorInfo("payload", new String[] {
                 "invalid payload",
-                String.format("something something (%s) not supported", "something")
-            };
+                String.format("%s at (%s), see (%s)",
+                              payloadValidator.getFirstCode(),
+                              payloadValidator.getFirstPointer(),
+                              payloadValidator.getFirstLocation())
+            });
         }
-        return ok;
+        return ok && !cancelled.get();
+    }
+
+    /**
+     * Ask a validatePayload() running on another thread to stop. The
+     * caller must still wait for it to return before reading the results.
+     */
+    public void cancel() {
+        cancelled.set(true);
     }
 
     public Path getPath() {
@@ -224,10 +370,38 @@ public class OasValidator {
     public Operation getOperation() {
         return operation;
     }
-    public String[] getErrorInfo() {
+    public CompiledSpec.CompiledOperation getCompiledOperation() {
+        return compiledOperation;
+    }
+    public CompiledSpec getCompiledSpec() {
+        return compiledSpec;
+    }
+    public synchronized String[] getErrorInfo() {
         return errorInfo;
     }
 
+    public synchronized String getFailedStage() {
+        return failedStage;
+    }
+
+    public Violations getViolations() {
+        return violations;
+    }
+
+    private void fail(String stage, Violations.Code code, String location, String[] info) {
+        if (violations.add(code, null, location)) {
+            setErrorInfo(stage, info);
+        }
+    }
+
+    // The payload may be validated on a separate thread, concurrently with
+    // the other checks. The error info describes the first violation, and
+    // only the caller whose add() recorded that violation sets it.
+    private synchronized void setErrorInfo(String stage, String[] info) {
+        failedStage = stage;
+        errorInfo = info;
+    }
+
     // private Map<String, io.swagger.models.Operation> populateOperationsMap() {
     //     if (operationsMap==null) {
     //     operationsMap = new HashMap<String, io.swagger.models.Operation>();
@@ -241,22 +415,26 @@ public class OasValidator {
     //     return operationsMap;
     // }
 
-    private Operation findOperation(String verb) {
-        switch(verb.toUpperCase()) {
-            case "GET":
-                return path.getGet();
-            case "PUT":
-                return path.getPut();
-            case "POST":
-                return path.getPost();
-            case "DELETE":
-                return path.getDelete();
-            case "PATCH":
-                return path.getPatch();
-            case "OPTIONS":
-                return path.getOptions();
-            default:
-                return null;
+    private static class CancellableInputStream extends FilterInputStream {
+        private final AtomicBoolean cancelled;
+
+        CancellableInputStream(InputStream in, AtomicBoolean cancelled) {
+            super(in);
+            this.cancelled = cancelled;
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (cancelled.get()) throw new InterruptedIOException("payload validation cancelled");
+        }
+
+        public int read() throws IOException {
+            checkCancelled();
+            return super.read();
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            return super.read(b, off, len);
         }
     }
 
@@ -0,0 +1,219 @@
+package com.dinochiesa.openapispec;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks a parsed payload against a compiled schema, recording what it
+ * finds in a Violations. The walk stops as soon as the Violations is full,
+ * marking it truncated if anything was left unchecked, or when the
+ * cancelled flag is set by another thread.
+ *
+ * The path to the current value is kept on a stack, and is turned into a
+ * JSON pointer (and a location in the spec) only when a violation is
+ * recorded, so a valid payload costs no string building at all.
+ *
+ * An instance is used by one thread, for one payload.
+ */
+class PayloadValidator {
+
+    private final Violations violations;
+    private final String rootLocation;
+    private final AtomicBoolean cancelled;
+
+    // How each frame on the stack was reached from the one below it.
+    private final static byte PROPERTY = 0;
+    private final static byte ITEM = 1;
+    private final static byte ADDITIONAL_PROPERTY = 2;
+    private final static byte ALL_OF = 3;
+
+    // The stack: at each depth, how it was reached, the member name (for a
+    // property), the array index (for an item, or an allOf part), and the
+    // schema that applies there.
+    private byte[] steps = new byte[16];
+    private String[] names = new String[16];
+    private int[] indexes = new int[16];
+    private SchemaNode[] schemas = new SchemaNode[16];
+    private int depth;
+
+    // the first violation found by this validator
+    private int failures;
+    private boolean recordedFirst;
+    private Violations.Code firstCode;
+    private String firstPointer;
+    private String firstLocation;
+
+    PayloadValidator(Violations violations, String rootLocation, AtomicBoolean cancelled) {
+        this.violations = violations;
+        this.rootLocation = rootLocation;
+        this.cancelled = cancelled;
+    }
+
+    // Returns true if the value satisfies the schema. If the Violations is
+    // already full when this is called, nothing is checked.
+    boolean validate(JsonNode value, SchemaNode schema) {
+        depth = 0;
+        schemas[0] = schema;
+        check(value, schema);
+        return failures == 0;
+    }
+
+    Violations.Code getFirstCode() { return firstCode; }
+    String getFirstPointer() { return firstPointer; }
+    String getFirstLocation() { return firstLocation; }
+
+    // True if this validator recorded the first violation in the Violations.
+    boolean recordedFirst() { return recordedFirst; }
+
+    private void check(JsonNode value, SchemaNode schema) {
+        if (schema == null || stopped()) return;
+
+        // each part applies to the same value; only the location changes
+        for (int i = 0; i < schema.allOf.length; i++) {
+            push(ALL_OF, null, i, schema.allOf[i]);
+            check(value, schema.allOf[i]);
+            depth--;
+        }
+
+        switch (schema.kind) {
+            case OBJECT:
+                if (!value.isObject()) {
+                    fail(Violations.Code.TYPE_MISMATCH, null);
+                    return;
+                }
+                for (int i = 0; i < schema.propertyNames.length; i++) {
+                    if (stopped()) return;
+                    JsonNode child = value.get(schema.propertyNames[i]);
+                    if (child == null) {
+                        if (schema.required[i]) {
+                            fail(Violations.Code.MISSING_PROPERTY, schema.propertyNames[i]);
+                        }
+                    }
+                    else {
+                        push(PROPERTY, schema.propertyNames[i], 0, schema.properties[i]);
+                        check(child, schema.properties[i]);
+                        depth--;
+                    }
+                }
+                if (schema.additionalProperties != null) {
+                    Iterator<Map.Entry<String, JsonNode>> fields = value.fields();
+                    while (fields.hasNext()) {
+                        Map.Entry<String, JsonNode> field = fields.next();
+                        if (isDeclared(schema, field.getKey())) continue;
+                        if (stopped()) return;
+                        push(ADDITIONAL_PROPERTY, field.getKey(), 0, schema.additionalProperties);
+                        check(field.getValue(), schema.additionalProperties);
+                        depth--;
+                    }
+                }
+                return;
+
+            case ARRAY:
+                if (!value.isArray()) {
+                    fail(Violations.Code.TYPE_MISMATCH, null);
+                    return;
+                }
+                for (int i = 0; i < value.size() && !stopped(); i++) {
+                    push(ITEM, null, i, schema.items);
+                    check(value.get(i), schema.items);
+                    depth--;
+                }
+                return;
+
+            case STRING:
+                if (!value.isTextual()) fail(Violations.Code.TYPE_MISMATCH, null);
+                return;
+            case INTEGER:
+                if (!value.isIntegralNumber()) fail(Violations.Code.TYPE_MISMATCH, null);
+                return;
+            case NUMBER:
+                if (!value.isNumber()) fail(Violations.Code.TYPE_MISMATCH, null);
+                return;
+            case BOOLEAN:
+                if (!value.isBoolean()) fail(Violations.Code.TYPE_MISMATCH, null);
+                return;
+            default:
+                return;
+        }
+    }
+
+    // additionalProperties applies only to members not named in properties
+    private static boolean isDeclared(SchemaNode schema, String name) {
+        for (String declared : schema.propertyNames) {
+            if (declared.equals(name)) return true;
+        }
+        return false;
+    }
+
+    // Called only where there is more to check: if the Violations is full,
+    // what is left will go unchecked, so the result is incomplete.
+    private boolean stopped() {
+        if (cancelled.get()) return true;
+        if (!violations.isFull()) return false;
+        violations.markTruncated();
+        return true;
+    }
+
+    private void push(byte step, String name, int index, SchemaNode schema) {
+        depth++;
+        if (depth == names.length) {
+            steps = Arrays.copyOf(steps, depth * 2);
+            names = Arrays.copyOf(names, depth * 2);
+            indexes = Arrays.copyOf(indexes, depth * 2);
+            schemas = Arrays.copyOf(schemas, depth * 2);
+        }
+        steps[depth] = step;
+        names[depth] = name;
+        indexes[depth] = index;
+        schemas[depth] = schema;
+    }
+
+    // Record a violation at the current depth. If missingProperty is non-null,
+    // the violation refers to that (absent) member of the current object.
+    private void fail(Violations.Code code, String missingProperty) {
+        StringBuilder pointer = new StringBuilder();
+        StringBuilder location = new StringBuilder(rootLocation);
+        for (int d = 0; d <= depth; d++) {
+            if (d > 0) {
+                switch (steps[d]) {
+                    case PROPERTY:
+                        pointer.append('/').append(Violations.escapePointerSegment(names[d]));
+                        location.append("/properties/").append(Violations.escapePointerSegment(names[d]));
+                        break;
+                    case ADDITIONAL_PROPERTY:
+                        pointer.append('/').append(Violations.escapePointerSegment(names[d]));
+                        location.append("/additionalProperties");
+                        break;
+                    case ALL_OF:
+                        location.append("/allOf/").append(indexes[d]);
+                        break;
+                    default:
+                        pointer.append('/').append(indexes[d]);
+                        location.append("/items");
+                        break;
+                }
+            }
+            // a named definition restarts the location
+            if (schemas[d] != null && schemas[d].definitionName != null) {
+                location.setLength(0);
+                location.append("#/definitions/").append(Violations.escapePointerSegment(schemas[d].definitionName));
+            }
+        }
+        if (missingProperty != null) {
+            pointer.append('/').append(Violations.escapePointerSegment(missingProperty));
+            location.append("/properties/").append(Violations.escapePointerSegment(missingProperty));
+        }
+        if (failures++ == 0) {
+            firstCode = code;
+            firstPointer = pointer.toString();
+            firstLocation = location.toString();
+        }
+        if (violations.add(code, pointer.toString(), location.toString())) {
+            recordedFirst = true;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.dinochiesa.openapispec;
+
+import io.swagger.models.ArrayModel;
+import io.swagger.models.ComposedModel;
+import io.swagger.models.Model;
+import io.swagger.models.ModelImpl;
+import io.swagger.models.Operation;
+import io.swagger.models.RefModel;
+import io.swagger.models.parameters.BodyParameter;
+import io.swagger.models.parameters.Parameter;
+import io.swagger.models.properties.ArrayProperty;
+import io.swagger.models.properties.MapProperty;
+import io.swagger.models.properties.Property;
+import io.swagger.models.properties.RefProperty;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns swagger Models and Properties into SchemaNodes, resolving each $ref
+ * against a map of definition name to node. That map must already hold a
+ * node - possibly still empty - for every definition, which is what allows
+ * cyclic references to be resolved in a single pass.
+ */
+class SchemaCompiler {
+
+    // Property and parameter names are repeated across definitions, operations
+    // and versions of the same spec; keep one copy of each.
+    private static Interner<String> names = Interners.newWeakInterner();
+
+    private final Map<String, SchemaNode> definitions;
+
+    SchemaCompiler(Map<String, SchemaNode> definitions) {
+        this.definitions = definitions;
+    }
+
+    static String intern(String name) {
+        return (name == null) ? null : names.intern(name);
+    }
+
+    // Fill in the (empty) node for a definition from its Model.
+    void fill(SchemaNode target, Model model) {
+        if (model instanceof RefModel) {
+            target.allOf = new SchemaNode[] { resolve(((RefModel) model).getSimpleRef()) };
+        }
+        else if (model instanceof ArrayModel) {
+            target.kind = SchemaNode.Kind.ARRAY;
+            target.items = compile(((ArrayModel) model).getItems());
+        }
+        else if (model instanceof ComposedModel) {
+            List<Model> parts = ((ComposedModel) model).getAllOf();
+            if (parts != null) {
+                target.allOf = new SchemaNode[parts.size()];
+                for (int i = 0; i < parts.size(); i++) {
+                    target.allOf[i] = compile(parts.get(i));
+                }
+            }
+        }
+        else if (model instanceof ModelImpl) {
+            ModelImpl impl = (ModelImpl) model;
+            Map<String, Property> props = impl.getProperties();
+            target.kind = (impl.getType() == null &&
+                           (props != null || impl.getAdditionalProperties() != null)) ?
+                SchemaNode.Kind.OBJECT : kindOf(impl.getType());
+            target.format = intern(impl.getFormat());
+            if (props != null) {
+                List<String> requiredNames = impl.getRequired();
+                int n = props.size(), i = 0;
+                target.propertyNames = new String[n];
+                target.properties = new SchemaNode[n];
+                target.required = new boolean[n];
+                for (Map.Entry<String, Property> entry : props.entrySet()) {
+                    target.propertyNames[i] = intern(entry.getKey());
+                    target.properties[i] = compile(entry.getValue());
+                    target.required[i] = entry.getValue().getRequired() ||
+                        (requiredNames != null && requiredNames.contains(entry.getKey()));
+                    i++;
+                }
+            }
+            // as with a MapProperty
+            target.additionalProperties = compile(impl.getAdditionalProperties());
+        }
+    }
+
+    SchemaNode compile(Model model) {
+        if (model == null) return null;
+        if (model instanceof RefModel) {
+            return resolve(((RefModel) model).getSimpleRef());
+        }
+        SchemaNode node = new SchemaNode();
+        fill(node, model);
+        return node;
+    }
+
+    SchemaNode compile(Property property) {
+        if (property == null) return null;
+        if (property instanceof RefProperty) {
+            return resolve(((RefProperty) property).getSimpleRef());
+        }
+        SchemaNode node = new SchemaNode();
+        if (property instanceof ArrayProperty) {
+            node.kind = SchemaNode.Kind.ARRAY;
+            node.items = compile(((ArrayProperty) property).getItems());
+        }
+        else if (property instanceof MapProperty) {
+            node.kind = SchemaNode.Kind.OBJECT;
+            node.additionalProperties = compile(((MapProperty) property).getAdditionalProperties());
+        }
+        else {
+            node.kind = kindOf(property.getType());
+            node.format = intern(property.getFormat());
+        }
+        return node;
+    }
+
+    SchemaNode compileBody(Operation operation) {
+        BodyParameter body = bodyParameterOf(operation);
+        return (body == null) ? null : compile(body.getSchema());
+    }
+
+    // A reference to a definition that does not exist matches anything.
+    private SchemaNode resolve(String definitionName) {
+        SchemaNode node = definitions.get(definitionName);
+        return (node != null) ? node : new SchemaNode(intern(definitionName));
+    }
+
+    static BodyParameter bodyParameterOf(Operation operation) {
+        if (operation.getParameters() == null) return null;
+        for (Parameter p : operation.getParameters()) {
+            if (p instanceof BodyParameter) return (BodyParameter) p;
+        }
+        return null;
+    }
+
+    static SchemaNode.Kind kindOf(String type) {
+        if (type == null) return SchemaNode.Kind.ANY;
+        switch (type) {
+            case "object": return SchemaNode.Kind.OBJECT;
+            case "array": return SchemaNode.Kind.ARRAY;
+            case "string": return SchemaNode.Kind.STRING;
+            case "integer": return SchemaNode.Kind.INTEGER;
+            case "number": return SchemaNode.Kind.NUMBER;
+            case "boolean": return SchemaNode.Kind.BOOLEAN;
+            default: return SchemaNode.Kind.ANY;
+        }
+    }
+
+    // Collect the names of the definitions referenced directly by a model.
+    static void collectRefs(Model model, Set<String> refs) {
+        if (model instanceof RefModel) {
+            refs.add(((RefModel) model).getSimpleRef());
+        }
+        else if (model instanceof ArrayModel) {
+            collectRefs(((ArrayModel) model).getItems(), refs);
+        }
+        else if (model instanceof ComposedModel) {
+            List<Model> parts = ((ComposedModel) model).getAllOf();
+            if (parts != null) {
+                for (Model part : parts) { collectRefs(part, refs); }
+            }
+        }
+        else if (model instanceof ModelImpl) {
+            Map<String, Property> props = ((ModelImpl) model).getProperties();
+            if (props != null) {
+                for (Property p : props.values()) { collectRefs(p, refs); }
+            }
+            collectRefs(((ModelImpl) model).getAdditionalProperties(), refs);
+        }
+    }
+
+    static void collectRefs(Property property, Set<String> refs) {
+        if (property instanceof RefProperty) {
+            refs.add(((RefProperty) property).getSimpleRef());
+        }
+        else if (property instanceof ArrayProperty) {
+            collectRefs(((ArrayProperty) property).getItems(), refs);
+        }
+        else if (property instanceof MapProperty) {
+            collectRefs(((MapProperty) property).getAdditionalProperties(), refs);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.dinochiesa.openapispec;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A schema from the spec, with every $ref already resolved to the node
+ * for the referenced definition. A definition that refers to itself,
+ * directly or through other definitions, yields a cyclic graph.
+ *
+ * Nodes are built by SchemaCompiler when the spec is loaded, and are not
+ * modified after that.
+ */
+public class SchemaNode {
+
+    public enum Kind { OBJECT, ARRAY, STRING, INTEGER, NUMBER, BOOLEAN, ANY }
+
+    private final static String[] NO_NAMES = new String[0];
+    private final static SchemaNode[] NO_NODES = new SchemaNode[0];
+    private final static boolean[] NO_FLAGS = new boolean[0];
+
+    // rough sizes, in bytes, for a 64-bit JVM with compressed oops
+    private final static int OBJECT_OVERHEAD = 16;
+    private final static int NODE_SIZE = OBJECT_OVERHEAD + 10 * 4;
+    private final static int ARRAY_OVERHEAD = 16;
+    private final static int REFERENCE_SIZE = 4;
+    private final static int STRING_OVERHEAD = 24 + ARRAY_OVERHEAD;
+
+    String definitionName;
+    Kind kind = Kind.ANY;
+    String format;
+    String[] propertyNames = NO_NAMES;
+    SchemaNode[] properties = NO_NODES;
+    boolean[] required = NO_FLAGS;
+    SchemaNode items;
+    SchemaNode additionalProperties;
+    SchemaNode[] allOf = NO_NODES;
+
+    SchemaNode() { }
+
+    SchemaNode(String definitionName) {
+        this.definitionName = definitionName;
+    }
+
+    /** The name of the definition, or null if this schema is inline. */
+    public String getDefinitionName() { return definitionName; }
+    public Kind getKind() { return kind; }
+    public String getFormat() { return format; }
+
+    /** Property names are interned; parallel to getProperties() and getRequired(). */
+    public String[] getPropertyNames() { return propertyNames; }
+    public SchemaNode[] getProperties() { return properties; }
+    public boolean[] getRequired() { return required; }
+    public SchemaNode getItems() { return items; }
+    public SchemaNode getAdditionalProperties() { return additionalProperties; }
+    public SchemaNode[] getAllOf() { return allOf; }
+
+    /**
+     * Returns an estimate of the memory retained by the graph reachable from
+     * the given roots, in bytes. Each node, and each distinct string, is
+     * counted once.
+     */
+    public static long estimateFootprint(Collection<SchemaNode> roots) {
+        Map<Object,Boolean> seen = new IdentityHashMap<Object,Boolean>();
+        List<SchemaNode> pending = new ArrayList<SchemaNode>(roots);
+        long total = 0;
+        while (!pending.isEmpty()) {
+            SchemaNode node = pending.remove(pending.size() - 1);
+            if (node == null || seen.put(node, Boolean.TRUE) != null) continue;
+            total += NODE_SIZE;
+            total += footprintOf(node.definitionName, seen) + footprintOf(node.format, seen);
+            if (node.propertyNames != NO_NAMES) {
+                total += 2 * (ARRAY_OVERHEAD + REFERENCE_SIZE * node.propertyNames.length);
+                total += ARRAY_OVERHEAD + node.required.length;
+                for (String name : node.propertyNames) {
+                    total += footprintOf(name, seen);
+                }
+            }
+            if (node.allOf != NO_NODES) {
+                total += ARRAY_OVERHEAD + REFERENCE_SIZE * node.allOf.length;
+            }
+            for (SchemaNode child : node.properties) { pending.add(child); }
+            for (SchemaNode child : node.allOf) { pending.add(child); }
+            pending.add(node.items);
+            pending.add(node.additionalProperties);
+        }
+        return total;
+    }
+
+    private static long footprintOf(String s, Map<Object,Boolean> seen) {
+        if (s == null || seen.put(s, Boolean.TRUE) != null) return 0;
+        return STRING_OVERHEAD + 2 * s.length();
+    }
+}
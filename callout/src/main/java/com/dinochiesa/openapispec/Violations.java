@@ -0,0 +1,135 @@
+package com.dinochiesa.openapispec;
+
+/**
+ * A bounded collection of validation failures. Storage for at most
+ * maxCount violations is allocated up front; once it is full, further
+ * violations are counted but not kept, and validation can stop early by
+ * checking isFull(). A validator that stops early calls markTruncated(),
+ * since it cannot know whether it would have found more.
+ *
+ * A single instance may be shared by the thread validating the payload and
+ * the thread checking the rest of the request, so the mutators are
+ * synchronized.
+ */
+public class Violations {
+
+    public enum Code {
+        INVALID_BASEPATH,
+        UNKNOWN_PATH,
+        UNSUPPORTED_METHOD,
+        MISSING_PARAMETER,
+        UNACCEPTABLE_MEDIA_TYPE,
+        UNSUPPORTED_CONTENT_TYPE,
+        MALFORMED_PAYLOAD,
+        TYPE_MISMATCH,
+        MISSING_PROPERTY
+    }
+
+    // approximate fixed size of one encoded violation, excluding the strings
+    private final static int ENCODED_ENTRY_OVERHEAD = 40;
+
+    private final Code[] codes;
+    private final String[] pointers;
+    private final String[] locations;
+    private int count;
+    private int dropped;
+    private boolean stoppedEarly;
+
+    public Violations(int maxCount) {
+        if (maxCount < 1) throw new IllegalArgumentException("maxCount must be positive");
+        codes = new Code[maxCount];
+        pointers = new String[maxCount];
+        locations = new String[maxCount];
+    }
+
+    /**
+     * Record a violation. The pointer is a JSON pointer into the request
+     * payload, or null if the violation is not about the payload. The
+     * location is a JSON pointer into the spec. Returns true if this is the
+     * first violation recorded, so that the caller, alone, can describe it
+     * as the reason the request failed.
+     */
+    public synchronized boolean add(Code code, String pointer, String location) {
+        if (count == codes.length) {
+            dropped++;
+            return false;
+        }
+        codes[count] = code;
+        pointers[count] = pointer;
+        locations[count] = location;
+        count++;
+        return count == 1;
+    }
+
+    /**
+     * Record that a check stopped, with work remaining, because this is full.
+     */
+    public synchronized void markTruncated() {
+        stoppedEarly = true;
+    }
+
+    public synchronized boolean isFull() { return count == codes.length; }
+    public synchronized int size() { return count; }
+    public synchronized boolean isTruncated() { return dropped > 0 || stoppedEarly; }
+    public synchronized Code getCode(int i) { return codes[i]; }
+    public synchronized String getPointer(int i) { return pointers[i]; }
+    public synchronized String getLocation(int i) { return locations[i]; }
+
+    /**
+     * Encodes the violations as compact JSON, like so:
+     * {"truncated":false,"violations":[{"code":"TYPE_MISMATCH","pointer":"/id","schema":"#/definitions/Pet/properties/id"}]}
+     */
+    public synchronized String toJson() {
+        int capacity = 48;
+        for (int i = 0; i < count; i++) {
+            capacity += ENCODED_ENTRY_OVERHEAD + codes[i].name().length() +
+                lengthOf(pointers[i]) + lengthOf(locations[i]);
+        }
+        StringBuilder sb = new StringBuilder(capacity);
+        sb.append("{\"truncated\":").append(dropped > 0 || stoppedEarly).append(",\"violations\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"code\":\"").append(codes[i].name()).append('"');
+            if (pointers[i] != null) {
+                sb.append(",\"pointer\":");
+                appendQuoted(sb, pointers[i]);
+            }
+            if (locations[i] != null) {
+                sb.append(",\"schema\":");
+                appendQuoted(sb, locations[i]);
+            }
+            sb.append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static int lengthOf(String s) {
+        return (s == null) ? 0 : s.length();
+    }
+
+    private static void appendQuoted(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Escapes one segment of a JSON pointer, per RFC 6901.
+     */
+    public static String escapePointerSegment(String segment) {
+        if (segment.indexOf('~') < 0 && segment.indexOf('/') < 0) return segment;
+        return segment.replace("~", "~0").replace("/", "~1");
+    }
+}
@@ -0,0 +1,161 @@
+package com.dinochiesa.edgecallouts.openapispec.testng;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import io.swagger.models.Swagger;
+import io.swagger.util.Yaml;
+
+import com.dinochiesa.openapispec.CompiledSpec;
+import com.dinochiesa.openapispec.SchemaNode;
+
+public class TestCompiledSpec {
+    private final static String testDataDir = "src/test/resources/test-data";
+
+    private static String readSpecText() throws IOException {
+        return readSpecText("petstore-minimal.yaml");
+    }
+
+    private static String readSpecText(String name) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(testDataDir, name));
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Swagger parse(String text) throws IOException {
+        return Yaml.mapper().readValue(text, Swagger.class);
+    }
+
+    @Test
+    public void testCompileFresh() throws IOException {
+        CompiledSpec spec = CompiledSpec.compile(parse(readSpecText()), "petstore", null);
+        Assert.assertNotNull(spec.getRoute("/pets"));
+        Assert.assertNotNull(spec.getRoute("/pets").getOperation("get"));
+        Assert.assertNull(spec.getRoute("/pets").getOperation("POST"));
+        Assert.assertNotNull(spec.getDefinition("Pet"));
+        Assert.assertEquals(spec.getReusedCount(), 0);
+    }
+
+    @Test
+    public void testRecompileUnchanged() throws IOException {
+        String text = readSpecText();
+        CompiledSpec v1 = CompiledSpec.compile(parse(text), "petstore", null);
+        CompiledSpec v2 = CompiledSpec.compile(parse(text), "petstore", v1);
+        Assert.assertSame(v2.getRoute("/pets"), v1.getRoute("/pets"));
+        Assert.assertSame(v2.getDefinition("Pet"), v1.getDefinition("Pet"));
+        Assert.assertEquals(v2.getReusedCount(), 2);
+    }
+
+    @Test
+    public void testRecompileChangedDefinition() throws IOException {
+        String text = readSpecText();
+        CompiledSpec v1 = CompiledSpec.compile(parse(text), "petstore", null);
+        String changed = text.replace("        tag: \n          type: \"string\"",
+                                      "        tag: \n          type: \"integer\"");
+        Assert.assertFalse(changed.equals(text), "test data did not change");
+        CompiledSpec v2 = CompiledSpec.compile(parse(changed), "petstore", v1);
+        Assert.assertSame(v2.getRoute("/pets"), v1.getRoute("/pets"));
+        Assert.assertNotSame(v2.getDefinition("Pet"), v1.getDefinition("Pet"));
+        Assert.assertEquals(v2.getReusedCount(), 1);
+    }
+
+    @Test
+    public void testLineage() throws IOException {
+        String url = "https://example.com/petstore.yaml";
+        Assert.assertEquals(CompiledSpec.lineageOf(url), url);
+        // inline specs and resources are compiled in full
+        Assert.assertNull(CompiledSpec.lineageOf(readSpecText()));
+        Assert.assertNull(CompiledSpec.lineageOf("petstore-minimal.yaml"));
+    }
+
+    @Test
+    public void testRefsResolved() throws IOException {
+        CompiledSpec spec = CompiledSpec.compile(parse(readSpecText("petstore-post.yaml")), "petstore", null);
+        SchemaNode pet = spec.getDefinition("Pet").getSchema();
+        Assert.assertEquals(pet.getKind(), SchemaNode.Kind.OBJECT);
+        Assert.assertEquals(pet.getPropertyNames().length, 3);
+        Assert.assertSame(spec.getRoute("/pets").getCompiledOperation("POST").getBodySchema(), pet);
+        Assert.assertNull(spec.getRoute("/pets").getCompiledOperation("GET").getBodySchema());
+        Assert.assertTrue(spec.getEstimatedFootprint() > 0);
+    }
+
+    @Test
+    public void testRouteRelinkedWhenReferencedDefinitionChanges() throws IOException {
+        String text = readSpecText("petstore-post.yaml");
+        CompiledSpec v1 = CompiledSpec.compile(parse(text), "petstore", null);
+        String changed = text.replace("        tag: \n          type: \"string\"",
+                                      "        tag: \n          type: \"integer\"");
+        Assert.assertFalse(changed.equals(text), "test data did not change");
+        CompiledSpec v2 = CompiledSpec.compile(parse(changed), "petstore", v1);
+        Assert.assertNotSame(v2.getRoute("/pets"), v1.getRoute("/pets"));
+        Assert.assertSame(v2.getRoute("/pets").getCompiledOperation("POST").getBodySchema(),
+                          v2.getDefinition("Pet").getSchema());
+        Assert.assertEquals(v2.getReusedCount(), 0);
+    }
+
+    @Test
+    public void testAdditionalPropertiesInDefinition() throws IOException {
+        String text = "---\n" +
+            "swagger: \"2.0\"\n" +
+            "info:\n" +
+            "  version: \"1.0.0\"\n" +
+            "  title: \"maps\"\n" +
+            "paths: {}\n" +
+            "definitions:\n" +
+            "  Tag:\n" +
+            "    type: \"string\"\n" +
+            "  Tags:\n" +
+            "    type: \"object\"\n" +
+            "    additionalProperties:\n" +
+            "      $ref: \"#/definitions/Tag\"\n";
+        CompiledSpec v1 = CompiledSpec.compile(parse(text), "maps", null);
+        SchemaNode tags = v1.getDefinition("Tags").getSchema();
+        Assert.assertEquals(tags.getKind(), SchemaNode.Kind.OBJECT);
+        Assert.assertSame(tags.getAdditionalProperties(), v1.getDefinition("Tag").getSchema());
+
+        // a change to the referenced definition must recompile the map
+        String changed = text.replace("  Tag:\n    type: \"string\"", "  Tag:\n    type: \"integer\"");
+        Assert.assertFalse(changed.equals(text), "test data did not change");
+        CompiledSpec v2 = CompiledSpec.compile(parse(changed), "maps", v1);
+        Assert.assertNotSame(v2.getDefinition("Tags"), v1.getDefinition("Tags"));
+        Assert.assertSame(v2.getDefinition("Tags").getSchema().getAdditionalProperties(),
+                          v2.getDefinition("Tag").getSchema());
+    }
+
+    @Test
+    public void testCyclicRefs() throws IOException {
+        String text = "---\n" +
+            "swagger: \"2.0\"\n" +
+            "info:\n" +
+            "  version: \"1.0.0\"\n" +
+            "  title: \"cycles\"\n" +
+            "paths: {}\n" +
+            "definitions:\n" +
+            "  Node:\n" +
+            "    type: \"object\"\n" +
+            "    properties:\n" +
+            "      parent:\n" +
+            "        $ref: \"#/definitions/Node\"\n" +
+            "      children:\n" +
+            "        type: \"array\"\n" +
+            "        items:\n" +
+            "          $ref: \"#/definitions/Node\"\n";
+        CompiledSpec spec = CompiledSpec.compile(parse(text), "cycles", null);
+        SchemaNode node = spec.getDefinition("Node").getSchema();
+        for (int i = 0; i < node.getPropertyNames().length; i++) {
+            SchemaNode property = node.getProperties()[i];
+            if (node.getPropertyNames()[i].equals("parent")) {
+                Assert.assertSame(property, node);
+            }
+            else {
+                Assert.assertEquals(property.getKind(), SchemaNode.Kind.ARRAY);
+                Assert.assertSame(property.getItems(), node);
+            }
+        }
+        Assert.assertTrue(spec.getEstimatedFootprint() > 0);
+    }
+}
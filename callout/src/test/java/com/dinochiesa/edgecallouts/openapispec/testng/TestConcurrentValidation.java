@@ -0,0 +1,448 @@
+package com.dinochiesa.edgecallouts.openapispec.testng;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Defaults;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import com.apigee.flow.message.Message;
+
+import com.dinochiesa.edgecallouts.openapispec.ValidatorCallout;
+import com.dinochiesa.openapispec.OasValidator;
+import com.dinochiesa.openapispec.SpecCacheHook;
+
+/**
+ * Exercises the state that OasValidator shares across threads - the parser,
+ * the mapper and the spec cache - from many threads at once. The jmockit
+ * MockUps used in TestValidatorCallout keep their state in the MockUp, which
+ * is shared by every instance, so this test uses a plain dynamic proxy to
+ * give each simulated request its own set of context variables.
+ */
+public class TestConcurrentValidation {
+    private final static String testDataDir = "src/test/resources/test-data";
+    private final static int THREADS = 200;
+    private final static int SPECS = 16;
+    private final static int REQUESTS_PER_THREAD = 25;
+
+    private String specTemplate;
+    private String petPayload;
+
+    @BeforeClass
+    public void readTestData() throws IOException {
+        specTemplate = readFile("petstore-post.yaml");
+        petPayload = readFile("payload-03-pet.json");
+        SpecCacheHook.countLoads();
+    }
+
+    private static String readFile(String name) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(testDataDir, name));
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Each spec gets a distinct basePath, and so a distinct cache key, which has
+    // not been seen by any other test in this JVM.
+    private String[] makeSpecs(String label) {
+        String unique = label + "-" + System.nanoTime();
+        String[] specs = new String[SPECS];
+        for (int i = 0; i < SPECS; i++) {
+            specs[i] = specTemplate.replace("basePath: \"/api\"",
+                                            String.format("basePath: \"/%s-%d\"", unique, i));
+        }
+        return specs;
+    }
+
+    private static String basePathOf(String spec) {
+        int start = spec.indexOf("basePath: \"") + 11;
+        return spec.substring(start, spec.indexOf('"', start));
+    }
+
+    private static MessageContext newMessageContext(final Map<String,Object> variables,
+                                                    final String content) {
+        byte[] bytes = (content == null) ? new byte[0] : content.getBytes(StandardCharsets.UTF_8);
+        return newMessageContext(variables, new ByteArrayInputStream(bytes));
+    }
+
+    // The content stream is for a single read of the payload.
+    private static MessageContext newMessageContext(final Map<String,Object> variables,
+                                                    final InputStream content) {
+        final Message message = (Message) Proxy.newProxyInstance(
+            Message.class.getClassLoader(),
+            new Class<?>[] { Message.class },
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getContentAsStream")) {
+                        return content;
+                    }
+                    return Defaults.defaultValue(method.getReturnType());
+                }
+            });
+
+        return (MessageContext) Proxy.newProxyInstance(
+            MessageContext.class.getClassLoader(),
+            new Class<?>[] { MessageContext.class },
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("getVariable")) {
+                        return variables.get((String) args[0]);
+                    }
+                    if (name.equals("setVariable")) {
+                        variables.put((String) args[0], args[1]);
+                        return true;
+                    }
+                    if (name.equals("removeVariable")) {
+                        variables.remove((String) args[0]);
+                        return true;
+                    }
+                    if (name.equals("getMessage")) {
+                        return message;
+                    }
+                    return Defaults.defaultValue(method.getReturnType());
+                }
+            });
+    }
+
+    // One request, of one of four kinds, against the given spec. Returns null
+    // if the callout behaved as expected, or a description of what went wrong.
+    private String runOne(String spec, int kind) {
+        String basePath = basePathOf(spec);
+        Map<String,Object> variables = new HashMap<String,Object>();
+        variables.put("my_spec", spec);
+        variables.put("proxy.basepath", basePath);
+        Map<String,String> properties = new HashMap<String,String>();
+        properties.put("spec", "{my_spec}");
+        properties.put("suppress-fault", "true");
+        String content = null;
+        String expectedError = null;
+        String expectedStage = null;
+
+        switch (kind % 4) {
+            case 0:
+                variables.put("request.verb", "GET");
+                variables.put("request.path", basePath + "/pets");
+                break;
+            case 1:
+                variables.put("request.verb", "POST");
+                variables.put("request.path", basePath + "/pets");
+                variables.put("request.header.content-type", "text/plain");
+                properties.put("parallel-validation", "true");
+                content = petPayload;
+                expectedError = "invalid content-type header";
+                expectedStage = "content-type";
+                break;
+            case 2:
+                variables.put("request.verb", "GET");
+                variables.put("request.path", basePath + "/not-pets");
+                expectedError = "invalid path";
+                break;
+            default:
+                variables.put("request.verb", "POST");
+                variables.put("request.path", basePath + "/pets");
+                variables.put("request.header.content-type", "application/json");
+                properties.put("parallel-validation", "true");
+                content = petPayload;
+                break;
+        }
+
+        ValidatorCallout callout = new ValidatorCallout(properties);
+        MessageContext msgCtxt = newMessageContext(variables, content);
+        ExecutionResult result = callout.execute(msgCtxt, (ExecutionContext) null);
+
+        if (result != ExecutionResult.SUCCESS) {
+            return String.format("kind %d: result %s, exception %s", kind % 4, result, variables.get("oas_exception"));
+        }
+        Object valid = variables.get("oas_valid");
+        Object error = variables.get("oas_error");
+        if (expectedError == null) {
+            if (!Boolean.TRUE.equals(valid)) {
+                return String.format("kind %d: expected valid, got (%s) error (%s)", kind % 4, valid, error);
+            }
+        }
+        else if (!expectedError.equals(error)) {
+            return String.format("kind %d: expected (%s), got (%s)", kind % 4, expectedError, error);
+        }
+        Object stage = variables.get("oas_failed_stage");
+        if (expectedStage != null && !expectedStage.equals(stage)) {
+            return String.format("kind %d: expected stage (%s), got (%s)", kind % 4, expectedStage, stage);
+        }
+        return null;
+    }
+
+    // Runs requests on the given number of threads, all released at once.
+    // Returns the elapsed nanoseconds; any misbehavior is added to failures.
+    private long runConcurrently(int threads, final int requestsPerThread, final String[] specs,
+                                 final List<String> failures)
+        throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            results.add(pool.submit(new Callable<List<String>>() {
+                    public List<String> call() throws Exception {
+                        List<String> mine = new ArrayList<String>();
+                        ready.countDown();
+                        start.await();
+                        for (int i = 0; i < requestsPerThread; i++) {
+                            String failure = runOne(specs[(seed + i) % specs.length], seed + i);
+                            if (failure != null) mine.add(failure);
+                        }
+                        return mine;
+                    }
+                }));
+        }
+        ready.await();
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (Future<List<String>> f : results) {
+            failures.addAll(f.get());
+        }
+        long elapsed = System.nanoTime() - t0;
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        return elapsed;
+    }
+
+    @Test
+    public void testConcurrentFirstLoads() throws Exception {
+        String[] specs = makeSpecs("first-load");
+        List<String> failures = new ArrayList<String>();
+
+        runConcurrently(THREADS, REQUESTS_PER_THREAD, specs, failures);
+
+        Assert.assertTrue(failures.isEmpty(), String.format("%d failures, first: %s",
+                                                            failures.size(),
+                                                            failures.isEmpty() ? "" : failures.get(0)));
+        // every thread hit every spec at about the same moment; each must be loaded once
+        for (int i = 0; i < SPECS; i++) {
+            Assert.assertEquals(SpecCacheHook.loadsOf(specs[i]), 1, "loads of spec " + i);
+        }
+    }
+
+    @Test
+    public void testCancelledPayload() throws Exception {
+        OasValidator validator = new OasValidator(specTemplate);
+        Assert.assertTrue(validator.validatePath("/pets"));
+        Assert.assertTrue(validator.validateVerb("POST"));
+        validator.cancel();
+        try {
+            validator.validatePayload(new ByteArrayInputStream(petPayload.getBytes(StandardCharsets.UTF_8)));
+            Assert.fail("expected the cancelled read to stop");
+        }
+        catch (InterruptedIOException expected) {
+        }
+        Assert.assertNull(validator.getFailedStage());
+        Assert.assertEquals(validator.getViolations().size(), 0);
+    }
+
+    @Test
+    public void testCollectConcurrently() throws Exception {
+        String spec = makeSpecs("collect")[0];
+        String basePath = basePathOf(spec);
+        Map<String,Object> variables = new HashMap<String,Object>();
+        variables.put("my_spec", spec);
+        variables.put("proxy.basepath", basePath);
+        variables.put("request.verb", "POST");
+        variables.put("request.path", basePath + "/pets");
+        variables.put("request.header.content-type", "text/plain");
+        Map<String,String> properties = new HashMap<String,String>();
+        properties.put("spec", "{my_spec}");
+        properties.put("parallel-validation", "true");
+        properties.put("collect-violations", "true");
+        properties.put("max-violations", "10");
+
+        ValidatorCallout callout = new ValidatorCallout(properties);
+        ExecutionResult result = callout.execute(newMessageContext(variables, readFile("payload-04-pet-invalid.json")),
+                                                 (ExecutionContext) null);
+
+        Assert.assertEquals(result, ExecutionResult.ABORT);
+        Assert.assertEquals(variables.get("oas_valid"), false);
+        // the payload is checked even though the content-type is rejected
+        String violations = (String) variables.get("oas_violations");
+        Assert.assertTrue(violations.contains("UNSUPPORTED_CONTENT_TYPE"), violations);
+        Assert.assertTrue(violations.contains("MISSING_PROPERTY"), violations);
+    }
+
+    // When a metadata check throws, execute() must not return while the
+    // payload is still being read on the pool.
+    @Test
+    public void testMetadataExceptionStopsPayload() throws Exception {
+        String spec = makeSpecs("metadata-throws")[0];
+        String basePath = basePathOf(spec);
+        Map<String,Object> variables = new HashMap<String,Object>();
+        variables.put("my_spec", spec);
+        variables.put("proxy.basepath", basePath);
+        variables.put("request.verb", "POST");
+        variables.put("request.path", basePath + "/pets");
+        variables.put("request.header.content-type", "application/json");
+        // not a String, so validateAccept throws
+        variables.put("request.header.accept", Integer.valueOf(42));
+        Map<String,String> properties = new HashMap<String,String>();
+        properties.put("spec", "{my_spec}");
+        properties.put("parallel-validation", "true");
+
+        StringBuilder big = new StringBuilder("{\"id\":1,\"name\":\"rex\",\"tag\":\"");
+        for (int i = 0; i < 1 << 20; i++) big.append('x');
+        big.append("\"}");
+        final AtomicBoolean returned = new AtomicBoolean(false);
+        final AtomicInteger lateReads = new AtomicInteger(0);
+        InputStream slow = new FilterInputStream(new ByteArrayInputStream(big.toString().getBytes(StandardCharsets.UTF_8))) {
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (returned.get()) lateReads.incrementAndGet();
+                    try { Thread.sleep(1); }
+                    catch (InterruptedException e) { throw new IOException(e); }
+                    return super.read(b, off, len);
+                }
+            };
+
+        ValidatorCallout callout = new ValidatorCallout(properties);
+        ExecutionResult result = callout.execute(newMessageContext(variables, slow), (ExecutionContext) null);
+        returned.set(true);
+        Thread.sleep(100);
+
+        Assert.assertEquals(result, ExecutionResult.ABORT);
+        Assert.assertNotNull(variables.get("oas_exception"));
+        Assert.assertEquals(lateReads.get(), 0, "payload was read after execute returned");
+    }
+
+    // With a cap of one, the payload task and the metadata checks race for
+    // the single slot; whichever wins, the error must describe that violation.
+    @Test
+    public void testFirstViolationMatchesError() throws Exception {
+        String spec = makeSpecs("first-violation")[0];
+        String basePath = basePathOf(spec);
+        String invalidPayload = readFile("payload-04-pet-invalid.json");
+        Map<String,String> properties = new HashMap<String,String>();
+        properties.put("spec", "{my_spec}");
+        properties.put("parallel-validation", "true");
+        properties.put("suppress-fault", "true");
+        ValidatorCallout callout = new ValidatorCallout(properties);
+
+        for (int i = 0; i < 200; i++) {
+            Map<String,Object> variables = new HashMap<String,Object>();
+            variables.put("my_spec", spec);
+            variables.put("proxy.basepath", basePath);
+            variables.put("request.verb", "POST");
+            variables.put("request.path", basePath + "/pets");
+            variables.put("request.header.content-type", "text/plain");
+            callout.execute(newMessageContext(variables, invalidPayload), (ExecutionContext) null);
+
+            String stage = (String) variables.get("oas_failed_stage");
+            String violations = (String) variables.get("oas_violations");
+            if ("content-type".equals(stage)) {
+                Assert.assertEquals(variables.get("oas_error"), "invalid content-type header");
+                Assert.assertTrue(violations.contains("UNSUPPORTED_CONTENT_TYPE"), violations);
+            }
+            else {
+                Assert.assertEquals(stage, "payload");
+                Assert.assertEquals(variables.get("oas_error"), "invalid payload");
+                Assert.assertFalse(violations.contains("UNSUPPORTED_CONTENT_TYPE"), violations);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentWithEvictions() throws Exception {
+        final String[] specs = makeSpecs("evictions");
+        List<String> failures = new ArrayList<String>();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicInteger[] evictions = new AtomicInteger[SPECS];
+        for (int i = 0; i < SPECS; i++) {
+            evictions[i] = new AtomicInteger(0);
+        }
+
+        Thread evictor = new Thread(new Runnable() {
+                public void run() {
+                    int i = 0;
+                    while (!done.get()) {
+                        int k = i++ % specs.length;
+                        if (SpecCacheHook.evict(specs[k])) {
+                            evictions[k].incrementAndGet();
+                        }
+                        try { Thread.sleep(2); }
+                        catch (InterruptedException e) { return; }
+                    }
+                }
+            });
+        evictor.start();
+        try {
+            runConcurrently(THREADS, REQUESTS_PER_THREAD, specs, failures);
+        }
+        finally {
+            done.set(true);
+            evictor.join();
+        }
+
+        Assert.assertTrue(failures.isEmpty(), String.format("%d failures, first: %s",
+                                                            failures.size(),
+                                                            failures.isEmpty() ? "" : failures.get(0)));
+        // for each key, one initial load plus at most one per eviction
+        int total = 0;
+        for (int i = 0; i < SPECS; i++) {
+            int loads = SpecCacheHook.loadsOf(specs[i]);
+            total += evictions[i].get();
+            Assert.assertTrue(loads >= 1 && loads <= 1 + evictions[i].get(),
+                              String.format("spec %d: %d loads, %d evictions", i, loads, evictions[i].get()));
+        }
+        Assert.assertTrue(total > 0, "nothing was evicted");
+    }
+
+    // A measurement rather than a check; run it with -Pperf.
+    @Test(groups = "perf")
+    public void testThroughputScaling() throws Exception {
+        String[] specs = makeSpecs("throughput");
+        int requestsPerRun = 20000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<String> failures = new ArrayList<String>();
+
+        // warm the cache and the JIT
+        runConcurrently(cores, requestsPerRun / cores, specs, failures);
+
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(cores);
+
+        System.out.printf("  throughput, %d specs, %d requests per run\n", SPECS, requestsPerRun);
+        double baseline = 0;
+        for (int threads : threadCounts) {
+            long elapsed = runConcurrently(threads, requestsPerRun / threads, specs, failures);
+            double perSecond = (requestsPerRun / threads) * threads / (elapsed / 1e9);
+            if (threads == 1) baseline = perSecond;
+            System.out.printf("  %3d threads: %10.0f req/s  (x%.2f)\n", threads, perSecond, perSecond / baseline);
+        }
+        Assert.assertTrue(failures.isEmpty(), String.format("%d failures, first: %s",
+                                                            failures.size(),
+                                                            failures.isEmpty() ? "" : failures.get(0)));
+    }
+}
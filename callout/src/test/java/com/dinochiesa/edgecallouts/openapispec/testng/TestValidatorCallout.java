@@ -243,6 +243,20 @@ public class TestValidatorCallout {
                 }
             }
         }
+
+        // optional: which stage of validation failed
+        String expectedStage = (String) tc.getExpected().get("failed_stage");
+        if (expectedStage != null) {
+            String actualStage = msgCtxt.getVariable("oas_failed_stage");
+            Assert.assertEquals(actualStage, expectedStage, "failed stage not as expected");
+        }
+
+        // optional: the violations, as JSON
+        String expectedViolations = (String) tc.getExpected().get("violations");
+        if (expectedViolations != null) {
+            String actualViolations = msgCtxt.getVariable("oas_violations");
+            Assert.assertEquals(actualViolations, expectedViolations, "violations not as expected");
+        }
         System.out.println("=========================================================");
     }
 
@@ -0,0 +1,223 @@
+package com.dinochiesa.edgecallouts.openapispec.testng;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.dinochiesa.openapispec.OasValidator;
+import com.dinochiesa.openapispec.Violations;
+
+public class TestViolations {
+    private final static String testDataDir = "src/test/resources/test-data";
+
+    private static String readFile(String name) throws Exception {
+        byte[] bytes = Files.readAllBytes(Paths.get(testDataDir, name));
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static OasValidator validatePetPayload(int maxViolations, String payload) throws Exception {
+        OasValidator validator = new OasValidator(readFile("petstore-post.yaml"), maxViolations);
+        Assert.assertTrue(validator.validatePath("/pets"));
+        Assert.assertTrue(validator.validateVerb("POST"));
+        InputStream in = new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(validator.validatePayload(in));
+        return validator;
+    }
+
+    @Test
+    public void testCollectFromPayload() throws Exception {
+        OasValidator validator = validatePetPayload(10, readFile("payload-04-pet-invalid.json"));
+        Violations violations = validator.getViolations();
+        Assert.assertEquals(violations.size(), 3);
+        Assert.assertFalse(violations.isTruncated());
+        Assert.assertEquals(validator.getFailedStage(), "payload");
+        Assert.assertEquals(validator.getErrorInfo()[0], "invalid payload");
+        for (int i = 0; i < violations.size(); i++) {
+            String pointer = violations.getPointer(i);
+            Assert.assertEquals(violations.getLocation(i), "#/definitions/Pet/properties" + pointer);
+            Assert.assertEquals(violations.getCode(i), pointer.equals("/name") ?
+                                Violations.Code.MISSING_PROPERTY : Violations.Code.TYPE_MISMATCH);
+        }
+    }
+
+    @Test
+    public void testFirstOnly() throws Exception {
+        OasValidator validator = validatePetPayload(1, readFile("payload-04-pet-invalid.json"));
+        Assert.assertEquals(validator.getViolations().size(), 1);
+        // the walk stopped with properties left unchecked
+        Assert.assertTrue(validator.getViolations().isTruncated());
+        Assert.assertTrue(validator.getViolations().toJson().startsWith("{\"truncated\":true,"));
+    }
+
+    @Test
+    public void testInlineAdditionalPropertiesLocation() throws Exception {
+        String spec = "---\n" +
+            "swagger: \"2.0\"\n" +
+            "info:\n" +
+            "  version: \"1.0.0\"\n" +
+            "  title: \"counts\"\n" +
+            "paths:\n" +
+            "  /counts:\n" +
+            "    post:\n" +
+            "      consumes:\n" +
+            "        - \"application/json\"\n" +
+            "      parameters:\n" +
+            "        - name: \"counts\"\n" +
+            "          in: \"body\"\n" +
+            "          schema:\n" +
+            "            $ref: \"#/definitions/Counts\"\n" +
+            "      responses:\n" +
+            "        \"200\":\n" +
+            "          description: \"ok\"\n" +
+            "definitions:\n" +
+            "  Counts:\n" +
+            "    type: \"object\"\n" +
+            "    properties:\n" +
+            "      label:\n" +
+            "        type: \"string\"\n" +
+            "    additionalProperties:\n" +
+            "      type: \"integer\"\n";
+        OasValidator validator = new OasValidator(spec, 10);
+        Assert.assertTrue(validator.validatePath("/counts"));
+        Assert.assertTrue(validator.validateVerb("POST"));
+        String payload = "{\"label\":\"fruit\",\"apples\":3,\"pears\":\"many\"}";
+        InputStream in = new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(validator.validatePayload(in));
+
+        Violations violations = validator.getViolations();
+        Assert.assertEquals(violations.size(), 1);
+        Assert.assertEquals(violations.getCode(0), Violations.Code.TYPE_MISMATCH);
+        Assert.assertEquals(violations.getPointer(0), "/pears");
+        Assert.assertEquals(violations.getLocation(0), "#/definitions/Counts/additionalProperties");
+    }
+
+    @Test
+    public void testAllOfLocations() throws Exception {
+        String spec = "---\n" +
+            "swagger: \"2.0\"\n" +
+            "info:\n" +
+            "  version: \"1.0.0\"\n" +
+            "  title: \"composed\"\n" +
+            "paths:\n" +
+            "  /pets:\n" +
+            "    post:\n" +
+            "      consumes:\n" +
+            "        - \"application/json\"\n" +
+            "      parameters:\n" +
+            "        - name: \"pet\"\n" +
+            "          in: \"body\"\n" +
+            "          schema:\n" +
+            "            $ref: \"#/definitions/NewPet\"\n" +
+            "      responses:\n" +
+            "        \"200\":\n" +
+            "          description: \"ok\"\n" +
+            "definitions:\n" +
+            "  Pet:\n" +
+            "    type: \"object\"\n" +
+            "    required:\n" +
+            "      - \"name\"\n" +
+            "    properties:\n" +
+            "      name:\n" +
+            "        type: \"string\"\n" +
+            "  NewPet:\n" +
+            "    allOf:\n" +
+            "      - $ref: \"#/definitions/Pet\"\n" +
+            "      - type: \"object\"\n" +
+            "        required:\n" +
+            "          - \"owner\"\n" +
+            "        properties:\n" +
+            "          owner:\n" +
+            "            type: \"string\"\n";
+        OasValidator validator = new OasValidator(spec, 10);
+        Assert.assertTrue(validator.validatePath("/pets"));
+        Assert.assertTrue(validator.validateVerb("POST"));
+        InputStream in = new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(validator.validatePayload(in));
+
+        Violations violations = validator.getViolations();
+        Assert.assertEquals(violations.size(), 2);
+        Assert.assertEquals(violations.getPointer(0), "/name");
+        Assert.assertEquals(violations.getLocation(0), "#/definitions/Pet/properties/name");
+        Assert.assertEquals(violations.getPointer(1), "/owner");
+        Assert.assertEquals(violations.getLocation(1), "#/definitions/NewPet/allOf/1/properties/owner");
+    }
+
+    @Test
+    public void testMissingRequiredParameter() throws Exception {
+        String spec = "---\n" +
+            "swagger: \"2.0\"\n" +
+            "info:\n" +
+            "  version: \"1.0.0\"\n" +
+            "  title: \"parameters\"\n" +
+            "paths:\n" +
+            "  /pets:\n" +
+            "    get:\n" +
+            "      parameters:\n" +
+            "        - name: \"limit\"\n" +
+            "          in: \"query\"\n" +
+            "          required: true\n" +
+            "          type: \"integer\"\n" +
+            "        - name: \"tag\"\n" +
+            "          in: \"query\"\n" +
+            "          type: \"string\"\n" +
+            "      responses:\n" +
+            "        \"200\":\n" +
+            "          description: \"the pets\"\n";
+        OasValidator.ParameterRetriever none = new OasValidator.ParameterRetriever() {
+                public String get(String name) { return null; }
+            };
+        OasValidator.ParameterRetriever limitOnly = new OasValidator.ParameterRetriever() {
+                public String get(String name) { return name.equals("limit") ? "10" : null; }
+            };
+
+        OasValidator validator = new OasValidator(spec);
+        Assert.assertTrue(validator.validatePath("/pets"));
+        Assert.assertTrue(validator.validateVerb("GET"));
+        Assert.assertTrue(validator.validateParameters(none, limitOnly));
+
+        validator = new OasValidator(spec);
+        Assert.assertTrue(validator.validatePath("/pets"));
+        Assert.assertTrue(validator.validateVerb("GET"));
+        Assert.assertFalse(validator.validateParameters(none, none));
+        Assert.assertEquals(validator.getFailedStage(), "parameters");
+        Assert.assertEquals(validator.getViolations().getCode(0), Violations.Code.MISSING_PARAMETER);
+    }
+
+    @Test
+    public void testBounded() {
+        Violations violations = new Violations(3);
+        for (int i = 0; i < 1000; i++) {
+            violations.add(Violations.Code.TYPE_MISMATCH, "/items/" + i, "#/definitions/Pet/properties/id");
+        }
+        Assert.assertTrue(violations.isFull());
+        Assert.assertTrue(violations.isTruncated());
+        Assert.assertEquals(violations.size(), 3);
+        Assert.assertEquals(violations.getPointer(2), "/items/2");
+    }
+
+    @Test
+    public void testJson() {
+        Violations violations = new Violations(10);
+        violations.add(Violations.Code.MISSING_PROPERTY, "/name", "#/definitions/Pet/properties/name");
+        violations.add(Violations.Code.UNSUPPORTED_CONTENT_TYPE, null, "#/paths/~1pets/post/consumes");
+        Assert.assertFalse(violations.isTruncated());
+        Assert.assertEquals(violations.toJson(),
+                            "{\"truncated\":false,\"violations\":[" +
+                            "{\"code\":\"MISSING_PROPERTY\",\"pointer\":\"/name\",\"schema\":\"#/definitions/Pet/properties/name\"}," +
+                            "{\"code\":\"UNSUPPORTED_CONTENT_TYPE\",\"schema\":\"#/paths/~1pets/post/consumes\"}]}");
+    }
+
+    @Test
+    public void testEscaping() {
+        Violations violations = new Violations(1);
+        violations.add(Violations.Code.TYPE_MISMATCH, "/a\"b\\c", null);
+        Assert.assertEquals(violations.toJson(),
+                            "{\"truncated\":false,\"violations\":[{\"code\":\"TYPE_MISMATCH\",\"pointer\":\"/a\\\"b\\\\c\"}]}");
+        Assert.assertEquals(Violations.escapePointerSegment("a/b~c"), "a~1b~0c");
+    }
+}
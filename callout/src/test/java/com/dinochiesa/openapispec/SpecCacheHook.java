@@ -0,0 +1,29 @@
+package com.dinochiesa.openapispec;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives the tests access to the spec cache inside OasValidator, which is
+ * not part of its public API.
+ */
+public class SpecCacheHook {
+
+    // Start counting loads, per key. Keys loaded before this is called
+    // are not counted.
+    public static synchronized void countLoads() {
+        if (OasValidator.loadCounts == null) {
+            OasValidator.loadCounts = new ConcurrentHashMap<String,AtomicInteger>();
+        }
+    }
+
+    public static int loadsOf(String specId) {
+        AtomicInteger count = OasValidator.loadCounts.get(specId);
+        return (count == null) ? 0 : count.get();
+    }
+
+    // Returns true if a loaded entry was removed.
+    public static boolean evict(String specId) {
+        return OasValidator.evictFromCache(specId);
+    }
+}